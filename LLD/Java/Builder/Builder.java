@@ -782,6 +782,11 @@ public class DatabaseConfigurationBuilder {
         return new Builder();
     }
 
+    // Immutable view of what was built, used as the key for ConnectionPoolRegistry
+    public DatabaseConfiguration toConfiguration(){
+        return new DatabaseConfiguration(databaseUrl, username, password, maxConnections, enableCache, isReadOnly);
+    }
+
     public static class Builder{
         private String databaseUrl;
         private String username;
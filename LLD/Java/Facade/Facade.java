@@ -90,4 +90,2136 @@ public class FacadePatternExample {
 
 /**
  * 
- */
\ No newline at end of file
+ */
+
+
+
+
+/**
+# Order Pipeline (Java)
+
+processOrder() above calls checkInventory, processPayment, shipOrder and sendNotification one after another on
+the caller's thread. All four stand in for I/O, so one order takes the sum of the four calls and the caller's thread
+is blocked for all of it. Below is the same facade as a staged asynchronous pipeline.
+
+1. Every subsystem gets its own executor with a bounded queue (a PipelineStage, inventory, shipping and
+   notification have their own, see 6., 9. and 10.). A slow subsystem only fills its own queue, and every stage can be given as many
+   threads as its subsystem can take.
+2. processOrder() returns a CompletableFuture straight away. Stock reservation and fraud check do not depend on each
+   other and run in parallel. The payment is only taken once both succeeded, so an out of stock order is never
+   charged, and shipping starts after the payment. One order takes max(inventory, fraud check) + payment + shipping.
+3. An order which fails after its unit was reserved gets the unit released, one which fails after the payment
+   (shipping failed) is refunded. A failed refund is tried again, up to three times. A refund which still fails
+   is added to the order's failure as a suppressed exception, so it is never lost silently.
+4. Notification is fire-and-forget: it is handed to NotificationManager for the order's customer when the order
+   future completed.
+5. Backpressure: when a stage queue is full the order fails straight away with a RejectedExecutionException
+   instead of queueing without limit, callers can retry later or shed load.
+6. Inventory is reserved, not only checked, through the InventoryReservationBatcher: during a flash sale thousands
+   of orders hit the same few SKUs at once. Requests arriving within a short window become one multi-SKU call to
+   InventoryManager.reserveBatch(), which takes each SKU's total with a single CAS on that SKU's counter and hands
+   the units out in arrival order. Hot SKUs cost one CAS per window instead of one contended CAS per order.
+7. OrderExecutionMode.VIRTUAL_THREADS (Java 21): every order runs on its own virtual thread as plain blocking code.
+   The reservation and the fraud check are forked in a StructuredTaskScope, if one fails the other is cancelled.
+   Tens of thousands of orders can wait on I/O at the same time without sizing thread pools, setMaxInFlightOrders()
+   is the only limit.
+8. processOrder(orderId, ...) dedups whole orders: a retried or concurrent call with the same order id gets the
+   first call's future back, so the unit is reserved and the parcel shipped once. A failed order can be run again
+   once it was undone. An order id reused for a different order is refused rather than answered with the old one.
+   Payments carry the order id as idempotency key as well: a retried payment returns the
+   payment of the first attempt instead of charging twice. Both keep their ids in a bounded index which forgets
+   them after a TTL. PaymentProcessor sends the payments of a short window to the PaymentGateway as one batch
+   instead of one call each.
+9. ShippingManager buffers shipments per route (region or carrier) and has its own worker pool create the labels
+   and the manifest of a whole route batch with one carrier call each. It bounds the shipments it holds, beyond
+   that submitShipment() fails with a RejectedExecutionException, which fails the order like a full stage does.
+10. NotificationManager gives every channel (email, sms, ...) its own bounded queue, workers and token bucket, so a
+    slow SMS provider only backs up SMS. An order notice goes out once, on the default channel. Messages to the same
+    customer within the coalescing window go out as one delivery. A full queue drops the notification, sending
+    never blocks and never fails the order.
+
+Usage:
+    try(OrderProcessingFacade facade = new OrderProcessingFacade()){
+        facade.processOrder("order-42", "customer-7", "ABC123", 100.0, "123 Main St, City")
+              .thenAccept(result -> System.out.println("Tracking id: " + result.getTrackingId()));
+    }
+ */
+
+package com.assignment.question;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stock per SKU. A product without a stock level (see setStock()) is not tracked and always available.
+ * 1. Reservations are a CAS loop on the SKU's AtomicLong, so SKUs never wait for each other and a reservation can
+ *    never take the stock below zero. Reading the stock is a plain volatile read.
+ * 2. The statistics (units reserved, requests turned down) are LongAdders: written on every reservation, read rarely.
+ */
+public class InventoryManager {
+
+    private final ConcurrentHashMap<String, SkuStock> stock = new ConcurrentHashMap<>();
+
+    public boolean checkInventory(String productId){
+        // Logic to check inventory
+        System.out.println("Checking inventory for product: " + productId);
+        return getAvailable(productId) > 0;
+    }
+
+    public void setStock(String productId, long quantity){
+        stock.computeIfAbsent(productId, id -> new SkuStock()).available.set(quantity);
+    }
+
+    /** Long.MAX_VALUE for products which are not tracked. */
+    public long getAvailable(String productId){
+        SkuStock sku = stock.get(productId);
+        return sku == null ? Long.MAX_VALUE : sku.available.get();
+    }
+
+    /** All or nothing. */
+    public boolean reserve(String productId, long quantity){
+        return reserveUpTo(productId, quantity, true) == quantity;
+    }
+
+    /** One request for many SKUs: per SKU as many units as are left, at most the asked quantity. */
+    public Map<String, Long> reserveBatch(Map<String, Long> quantities){
+        Map<String, Long> granted = new HashMap<>(quantities.size() * 2);
+        quantities.forEach((productId, quantity) -> granted.put(productId, reserveUpTo(productId, quantity, false)));
+        return granted;
+    }
+
+    public void release(String productId, long quantity){
+        SkuStock sku = stock.get(productId);
+        if(sku != null){
+            sku.available.addAndGet(quantity);
+            sku.reserved.add(-quantity);
+        }
+    }
+
+    public long getReservedCount(String productId){
+        SkuStock sku = stock.get(productId);
+        return sku == null ? 0 : sku.reserved.sum();
+    }
+
+    public long getRejectedCount(String productId){
+        SkuStock sku = stock.get(productId);
+        return sku == null ? 0 : sku.rejected.sum();
+    }
+
+    private long reserveUpTo(String productId, long quantity, boolean allOrNothing){
+        SkuStock sku = stock.get(productId);
+        if(sku == null){
+            return quantity;
+        }
+        while(true){
+            long available = sku.available.get();
+            long taken = Math.min(available, quantity);
+            if(taken <= 0 || (allOrNothing && taken < quantity)){
+                sku.rejected.increment();
+                return 0;
+            }
+            if(sku.available.compareAndSet(available, available - taken)){
+                sku.reserved.add(taken);
+                if(taken < quantity){
+                    sku.rejected.increment();
+                }
+                return taken;
+            }
+        }
+    }
+
+    private static final class SkuStock {
+        final AtomicLong available = new AtomicLong();
+        final LongAdder reserved = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+    }
+}
+
+package com.assignment.question;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects reservations for a short window and sends them to InventoryManager as one multi-SKU reserveBatch().
+ * 1. reserve() only adds to a lock-free queue, one "inventory-reservation-batcher" thread drains it every window
+ *    (earlier when maxBatchSize requests are waiting).
+ * 2. Per SKU the batch asks for the total of all its requests, the granted units go to the requests in arrival
+ *    order, whatever nobody could use is released straight away.
+ */
+public class InventoryReservationBatcher implements AutoCloseable {
+
+    private final InventoryManager inventoryManager;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final ConcurrentLinkedQueue<Request> pending;
+    private final AtomicInteger pendingCount;
+    private final Thread flusher;
+    private volatile boolean running;
+
+    public InventoryReservationBatcher(InventoryManager inventoryManager, Duration window, int maxBatchSize){
+        if(window.isNegative() || window.isZero() || maxBatchSize < 1){
+            throw new IllegalArgumentException("Reservation window and batch size must be positive");
+        }
+        this.inventoryManager = inventoryManager;
+        this.windowNanos = window.toNanos();
+        this.maxBatchSize = maxBatchSize;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.pendingCount = new AtomicInteger();
+        this.running = true;
+        this.flusher = new Thread(this::run, "inventory-reservation-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** Completes with true when quantity units were reserved, false when there was not enough stock. */
+    public CompletableFuture<Boolean> reserve(String productId, long quantity){
+        Request request = new Request(productId, quantity);
+        if(!running){
+            request.result.completeExceptionally(new IllegalStateException("Reservation batcher is closed"));
+            return request.result;
+        }
+        pending.add(request);
+        if(!running && pending.remove(request)){
+            // close() drained the queue before our add landed, nobody else will ever complete it
+            request.result.completeExceptionally(new IllegalStateException("Reservation batcher is closed"));
+            return request.result;
+        }
+        if(pendingCount.incrementAndGet() >= maxBatchSize){
+            LockSupport.unpark(flusher);
+        }
+        return request.result;
+    }
+
+    /** For an order which failed after reserving: gives the units back once (and if) the reservation went through. */
+    public void releaseIfReserved(CompletableFuture<Boolean> reservation, String productId, long quantity){
+        reservation.thenAccept(reserved -> {
+            if(reserved){
+                inventoryManager.release(productId, quantity);
+            }
+        });
+    }
+
+    /** Reserves what is still queued, then stops the flusher. */
+    @Override
+    public void close(){
+        running = false;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(){
+        while(running){
+            LockSupport.parkNanos(windowNanos);
+            flush();
+        }
+        flush();
+    }
+
+    private void flush(){
+        Map<String, List<Request>> requestsBySku = new LinkedHashMap<>();
+        Map<String, Long> quantities = new LinkedHashMap<>();
+        for(Request request; (request = pending.poll()) != null; ){
+            pendingCount.decrementAndGet();
+            requestsBySku.computeIfAbsent(request.productId, id -> new ArrayList<>()).add(request);
+            quantities.merge(request.productId, request.quantity, Long::sum);
+        }
+        if(quantities.isEmpty()){
+            return;
+        }
+        Map<String, Long> granted;
+        try {
+            granted = inventoryManager.reserveBatch(quantities);
+        } catch (Throwable e){
+            // Fails this batch only, like PipelineStage.submit(): the flusher has to live on for the next ones
+            requestsBySku.values().forEach(requests -> requests.forEach(request -> request.result.completeExceptionally(e)));
+            return;
+        }
+        requestsBySku.forEach((productId, requests) -> {
+            long left = granted.getOrDefault(productId, 0L);
+            for(Request request : requests){
+                boolean reserved = request.quantity <= left;
+                if(reserved){
+                    left -= request.quantity;
+                }
+                request.result.complete(reserved);
+            }
+            if(left > 0){
+                inventoryManager.release(productId, left);
+            }
+        });
+    }
+
+    private static final class Request {
+        final String productId;
+        final long quantity;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Request(String productId, long quantity){
+            this.productId = productId;
+            this.quantity = quantity;
+        }
+    }
+}
+
+package com.assignment.question;
+
+public class FraudDetector {
+
+    /** false when the order looks fraudulent and must not be charged. */
+    public boolean approve(String productId, double amount, String address){
+        // Logic to score the order
+        System.out.println("Checking order for fraud: " + productId + ", " + amount);
+        return true;
+    }
+}
+
+package com.assignment.question;
+
+/** One payment of a gateway batch. */
+public class PaymentRequest {
+
+    private final String idempotencyKey;
+    private final double amount;
+
+    public PaymentRequest(String idempotencyKey, double amount){
+        this.idempotencyKey = idempotencyKey;
+        this.amount = amount;
+    }
+
+    public String getIdempotencyKey(){
+        return idempotencyKey;
+    }
+
+    public double getAmount(){
+        return amount;
+    }
+}
+
+package com.assignment.question;
+import java.util.List;
+
+public interface PaymentGateway {
+
+    /**
+     * Charges every payment of the batch in one call. Returns one payment id per request, in the same order,
+     * null for a declined payment. Throws when the batch as a whole could not be submitted.
+     */
+    List<String> submitBatch(List<PaymentRequest> batch);
+
+    void refund(String paymentId);
+}
+
+package com.assignment.question;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Local gateway for tests: approves every payment, counts the batches it got. */
+public class StubPaymentGateway implements PaymentGateway {
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder payments = new LongAdder();
+
+    @Override
+    public List<String> submitBatch(List<PaymentRequest> batch){
+        // Logic to call the payment gateway
+        batches.increment();
+        payments.add(batch.size());
+        List<String> paymentIds = new ArrayList<>(batch.size());
+        for(int i = 0; i < batch.size(); i++){
+            paymentIds.add(UUID.randomUUID().toString());
+        }
+        return paymentIds;
+    }
+
+    @Override
+    public void refund(String paymentId){
+        // Logic to refund payment
+        System.out.println("Refunding payment: " + paymentId);
+    }
+
+    public long getBatchCount(){
+        return batches.sum();
+    }
+
+    public long getPaymentCount(){
+        return payments.sum();
+    }
+}
+
+package com.assignment.question;
+import java.time.Duration;
+
+public class PaymentProcessorConfiguration {
+
+    private final PaymentGateway gateway;
+    private final Duration batchWindow;
+    private final int maxBatchSize;
+    private final int maxIdempotencyKeys;
+    private final Duration idempotencyKeyTtl;
+
+    private PaymentProcessorConfiguration(Builder builder){
+        this.gateway = builder.gateway;
+        this.batchWindow = builder.batchWindow;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.maxIdempotencyKeys = builder.maxIdempotencyKeys;
+        this.idempotencyKeyTtl = builder.idempotencyKeyTtl;
+    }
+
+    public static Builder builder(){
+        return new Builder();
+    }
+
+    public PaymentGateway getGateway(){
+        return gateway;
+    }
+
+    public Duration getBatchWindow(){
+        return batchWindow;
+    }
+
+    public int getMaxBatchSize(){
+        return maxBatchSize;
+    }
+
+    public int getMaxIdempotencyKeys(){
+        return maxIdempotencyKeys;
+    }
+
+    public Duration getIdempotencyKeyTtl(){
+        return idempotencyKeyTtl;
+    }
+
+    public static class Builder {
+        private PaymentGateway gateway = new StubPaymentGateway();
+        private Duration batchWindow = Duration.ofMillis(5);
+        private int maxBatchSize = 200;
+        private int maxIdempotencyKeys = 100_000;
+        private Duration idempotencyKeyTtl = Duration.ofHours(24);
+
+        public Builder setGateway(PaymentGateway gateway){
+            this.gateway = gateway;
+            return this;
+        }
+
+        /** How long payments are collected before one gateway call, and how many trigger it early. */
+        public Builder setBatching(Duration window, int maxBatchSize){
+            this.batchWindow = window;
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /** A key is remembered for ttl, the oldest settled keys are dropped beyond maxKeys. */
+        public Builder setIdempotencyIndex(int maxKeys, Duration ttl){
+            this.maxIdempotencyKeys = maxKeys;
+            this.idempotencyKeyTtl = ttl;
+            return this;
+        }
+
+        public PaymentProcessorConfiguration build(){
+            if(gateway == null){
+                throw new IllegalArgumentException("Payment gateway is required");
+            }
+            if(batchWindow.isNegative() || batchWindow.isZero() || maxBatchSize < 1
+                    || maxIdempotencyKeys < 1 || idempotencyKeyTtl.isNegative() || idempotencyKeyTtl.isZero()){
+                throw new IllegalArgumentException("Batching and idempotency index settings must be positive");
+            }
+            return new PaymentProcessorConfiguration(this);
+        }
+    }
+}
+
+package com.assignment.question;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes payments by idempotency key and charges them through the PaymentGateway in batches.
+ * 1. The first call for a key charges, every further call with that key gets the same future back, also while
+ *    the first one is still waiting for its batch. The same key with another amount is refused.
+ * 2. The index is bounded: keys expire after the TTL, and beyond maxIdempotencyKeys the oldest settled keys are
+ *    dropped. Keys of payments still in flight are never dropped, so the bound can be exceeded while they wait.
+ * 3. A "payment-batcher" thread sends whatever was submitted within the window as one submitBatch()
+ *    (earlier when maxBatchSize payments are waiting).
+ * 4. A declined payment stays declined for its key. A batch which failed as a whole forgets its keys, retrying
+ *    them is safe because nothing was charged.
+ */
+public class PaymentProcessor implements AutoCloseable {
+
+    private final PaymentGateway gateway;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final int maxKeys;
+    private final long keyTtlNanos;
+    private final ConcurrentHashMap<String, Payment> payments;
+    private final ConcurrentLinkedQueue<Payment> paymentsByAge;
+    private final ConcurrentLinkedQueue<Payment> pending;
+    private final AtomicInteger pendingCount;
+    private final Thread batcher;
+    private volatile boolean running;
+
+    public PaymentProcessor(){
+        this(PaymentProcessorConfiguration.builder().build());
+    }
+
+    public PaymentProcessor(PaymentProcessorConfiguration configuration){
+        this.gateway = configuration.getGateway();
+        this.windowNanos = configuration.getBatchWindow().toNanos();
+        this.maxBatchSize = configuration.getMaxBatchSize();
+        this.maxKeys = configuration.getMaxIdempotencyKeys();
+        this.keyTtlNanos = configuration.getIdempotencyKeyTtl().toNanos();
+        this.payments = new ConcurrentHashMap<>();
+        this.paymentsByAge = new ConcurrentLinkedQueue<>();
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.pendingCount = new AtomicInteger();
+        this.running = true;
+        this.batcher = new Thread(this::run, "payment-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    /** Without a key every call is a new payment, a retry charges again. */
+    public String processPayment(double amount){
+        return processPayment(UUID.randomUUID().toString(), amount);
+    }
+
+    /** The id of the payment, needed to refund it. Blocks until the payment's batch went through. */
+    public String processPayment(String idempotencyKey, double amount){
+        try {
+            return submitPayment(idempotencyKey, amount).join();
+        } catch (CompletionException e){
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /** Completes with the id of the payment once its batch went through. */
+    public CompletableFuture<String> submitPayment(String idempotencyKey, double amount){
+        if(!running){
+            return CompletableFuture.failedFuture(new IllegalStateException("Payment processor is closed"));
+        }
+        long now = System.nanoTime();
+        evictExpired(now);
+        Payment payment = new Payment(idempotencyKey, amount, now);
+        Payment existing = payments.putIfAbsent(idempotencyKey, payment);
+        if(existing != null){
+            if(Double.compare(existing.request.getAmount(), amount) != 0){
+                return CompletableFuture.failedFuture(new OrderProcessingException(
+                        "Idempotency key " + idempotencyKey + " was used for another amount"));
+            }
+            return existing.result;
+        }
+        paymentsByAge.add(payment);
+        pending.add(payment);
+        if(!running && pending.remove(payment)){
+            // close() drained the queue before our add landed, nothing was charged so the key is forgotten
+            payments.remove(idempotencyKey, payment);
+            paymentsByAge.remove(payment);
+            payment.result.completeExceptionally(new IllegalStateException("Payment processor is closed"));
+            return payment.result;
+        }
+        if(pendingCount.incrementAndGet() >= maxBatchSize){
+            LockSupport.unpark(batcher);
+        }
+        return payment.result;
+    }
+
+    public void refundPayment(String paymentId){
+        gateway.refund(paymentId);
+    }
+
+    /** Refunds and forgets the key, a retry of the same order charges again. */
+    public void refundPayment(String idempotencyKey, String paymentId){
+        Payment payment = payments.get(idempotencyKey);
+        if(payment != null && paymentId.equals(payment.result.getNow(null))){
+            payments.remove(idempotencyKey, payment);
+        }
+        gateway.refund(paymentId);
+    }
+
+    public int getIdempotencyKeyCount(){
+        return payments.size();
+    }
+
+    /** Charges what is still queued, then stops the batcher. */
+    @Override
+    public void close(){
+        running = false;
+        LockSupport.unpark(batcher);
+        try {
+            batcher.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(){
+        while(running){
+            LockSupport.parkNanos(windowNanos);
+            while(submitBatch()){
+                // a full batch was sent, more may be waiting
+            }
+        }
+        while(submitBatch()){
+            // drain
+        }
+    }
+
+    /** true when a full batch was sent. */
+    private boolean submitBatch(){
+        List<Payment> batch = new ArrayList<>(Math.min(maxBatchSize, Math.max(1, pendingCount.get())));
+        for(Payment payment; batch.size() < maxBatchSize && (payment = pending.poll()) != null; ){
+            pendingCount.decrementAndGet();
+            batch.add(payment);
+        }
+        if(batch.isEmpty()){
+            return false;
+        }
+        List<PaymentRequest> requests = new ArrayList<>(batch.size());
+        batch.forEach(payment -> requests.add(payment.request));
+        List<String> paymentIds;
+        try {
+            paymentIds = gateway.submitBatch(requests);
+            if(paymentIds.size() != batch.size()){
+                throw new IllegalStateException("Gateway returned " + paymentIds.size() + " results for " + batch.size() + " payments");
+            }
+        } catch (Throwable e){
+            // An Error fails this batch too instead of the batcher thread, which every later payment waits on
+            for(Payment payment : batch){
+                payments.remove(payment.request.getIdempotencyKey(), payment);
+                payment.result.completeExceptionally(e);
+            }
+            return batch.size() == maxBatchSize;
+        }
+        for(int i = 0; i < batch.size(); i++){
+            Payment payment = batch.get(i);
+            String paymentId = paymentIds.get(i);
+            if(paymentId == null){
+                payment.result.completeExceptionally(new OrderProcessingException(
+                        "Payment declined: " + payment.request.getIdempotencyKey()));
+            } else {
+                payment.result.complete(paymentId);
+            }
+        }
+        return batch.size() == maxBatchSize;
+    }
+
+    // Keys are created in time order, so the expired and the oldest ones are at the head of paymentsByAge
+    private void evictExpired(long now){
+        for(Payment oldest; (oldest = paymentsByAge.peek()) != null; ){
+            boolean expired = now - oldest.createdAt > keyTtlNanos;
+            boolean overLimit = payments.size() >= maxKeys;
+            boolean forgotten = payments.get(oldest.request.getIdempotencyKey()) != oldest;
+            if(!forgotten && !(oldest.result.isDone() && (expired || overLimit))){
+                return;
+            }
+            if(paymentsByAge.remove(oldest)){
+                payments.remove(oldest.request.getIdempotencyKey(), oldest);
+            }
+        }
+    }
+
+    private static final class Payment {
+        final PaymentRequest request;
+        final long createdAt;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Payment(String idempotencyKey, double amount, long createdAt){
+            this.request = new PaymentRequest(idempotencyKey, amount);
+            this.createdAt = createdAt;
+        }
+    }
+}
+
+package com.assignment.question;
+import java.util.List;
+
+public interface CarrierClient {
+
+    /** One label per address, in the same order. Returns the tracking ids. */
+    List<String> createLabels(String route, List<String> addresses);
+
+    /** Hands the shipments of a route over to the carrier. */
+    void submitManifest(String route, List<String> trackingIds);
+}
+
+package com.assignment.question;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Local carrier for tests: prints the manifests, counts the label calls. */
+public class StubCarrierClient implements CarrierClient {
+
+    private final LongAdder labelCalls = new LongAdder();
+    private final LongAdder labels = new LongAdder();
+
+    @Override
+    public List<String> createLabels(String route, List<String> addresses){
+        // Logic to call the carrier
+        labelCalls.increment();
+        labels.add(addresses.size());
+        List<String> trackingIds = new ArrayList<>(addresses.size());
+        for(int i = 0; i < addresses.size(); i++){
+            trackingIds.add(UUID.randomUUID().toString());
+        }
+        return trackingIds;
+    }
+
+    @Override
+    public void submitManifest(String route, List<String> trackingIds){
+        System.out.println("Manifest for route " + route + ": " + trackingIds.size() + " shipments");
+    }
+
+    public long getLabelCallCount(){
+        return labelCalls.sum();
+    }
+
+    public long getLabelCount(){
+        return labels.sum();
+    }
+}
+
+package com.assignment.question;
+import java.time.Duration;
+import java.util.function.Function;
+
+public class ShippingManagerConfiguration {
+
+    private final CarrierClient carrier;
+    private final Function<String, String> routeOf;
+    private final Duration batchWindow;
+    private final int maxBatchSize;
+    private final int workerThreads;
+    private final int maxPendingShipments;
+
+    private ShippingManagerConfiguration(Builder builder){
+        this.carrier = builder.carrier;
+        this.routeOf = builder.routeOf;
+        this.batchWindow = builder.batchWindow;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.workerThreads = builder.workerThreads;
+        this.maxPendingShipments = builder.maxPendingShipments;
+    }
+
+    public static Builder builder(){
+        return new Builder();
+    }
+
+    public CarrierClient getCarrier(){
+        return carrier;
+    }
+
+    public Function<String, String> getRouteOf(){
+        return routeOf;
+    }
+
+    public Duration getBatchWindow(){
+        return batchWindow;
+    }
+
+    public int getMaxBatchSize(){
+        return maxBatchSize;
+    }
+
+    public int getWorkerThreads(){
+        return workerThreads;
+    }
+
+    public int getMaxPendingShipments(){
+        return maxPendingShipments;
+    }
+
+    // "123 Main St, City" ships on route "city"
+    private static String lastAddressPart(String address){
+        int comma = address.lastIndexOf(',');
+        return address.substring(comma + 1).trim().toLowerCase();
+    }
+
+    public static class Builder {
+        private CarrierClient carrier = new StubCarrierClient();
+        private Function<String, String> routeOf = ShippingManagerConfiguration::lastAddressPart;
+        private Duration batchWindow = Duration.ofMillis(20);
+        private int maxBatchSize = 100;
+        private int workerThreads = 4;
+        private int maxPendingShipments = 10_000;
+
+        public Builder setCarrier(CarrierClient carrier){
+            this.carrier = carrier;
+            return this;
+        }
+
+        /** Shipments with the same route are batched together: region, carrier, depot. */
+        public Builder setRouteOf(Function<String, String> routeOf){
+            this.routeOf = routeOf;
+            return this;
+        }
+
+        /** How long shipments are collected per route, and how many trigger a batch early. */
+        public Builder setBatching(Duration window, int maxBatchSize){
+            this.batchWindow = window;
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public Builder setWorkerThreads(int workerThreads){
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        /** Shipments buffered or being labelled, beyond this submitShipment() is rejected. */
+        public Builder setMaxPendingShipments(int maxPendingShipments){
+            this.maxPendingShipments = maxPendingShipments;
+            return this;
+        }
+
+        public ShippingManagerConfiguration build(){
+            if(carrier == null || routeOf == null){
+                throw new IllegalArgumentException("Carrier and route function are required");
+            }
+            if(batchWindow.isNegative() || batchWindow.isZero() || maxBatchSize < 1 || workerThreads < 1 || maxPendingShipments < 1){
+                throw new IllegalArgumentException("Batching, worker and backlog settings must be positive");
+            }
+            return new ShippingManagerConfiguration(this);
+        }
+    }
+}
+
+package com.assignment.question;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Buffers shipments per route and creates labels and manifests a route batch at a time.
+ * 1. submitShipment() adds to the route's lock-free buffer. A "shipping-batcher" thread cuts every route into
+ *    batches of at most maxBatchSize each window, or as soon as one route has a full batch.
+ * 2. A batch is one createLabels() and one submitManifest() call on a "shipping" PipelineStage, so the carrier
+ *    calls are amortized over the whole batch and a slow carrier never blocks the batcher. Once the labels
+ *    exist the shipments complete, a refused manifest is kept and sent again every window.
+ * 3. Backpressure: at most maxPendingShipments are buffered or being labelled, beyond that the shipment fails
+ *    straight away with a RejectedExecutionException.
+ * 4. A route's buffer is dropped after a window without shipments, so routes only cost memory while they are
+ *    in use even when routeOf() returns free-form text.
+ */
+public class ShippingManager implements AutoCloseable {
+
+    private final CarrierClient carrier;
+    private final Function<String, String> routeOf;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final Semaphore pendingShipments;
+    private final ConcurrentHashMap<String, RouteBuffer> routes;
+    private final ConcurrentLinkedQueue<Manifest> unmanifested;
+    private final AtomicBoolean retryingManifests;
+    private final PipelineStage workers;
+    private final Thread batcher;
+    private volatile boolean running;
+
+    public ShippingManager(){
+        this(ShippingManagerConfiguration.builder().build());
+    }
+
+    public ShippingManager(ShippingManagerConfiguration configuration){
+        this.carrier = configuration.getCarrier();
+        this.routeOf = configuration.getRouteOf();
+        this.windowNanos = configuration.getBatchWindow().toNanos();
+        this.maxBatchSize = configuration.getMaxBatchSize();
+        this.pendingShipments = new Semaphore(configuration.getMaxPendingShipments());
+        this.routes = new ConcurrentHashMap<>();
+        this.unmanifested = new ConcurrentLinkedQueue<>();
+        this.retryingManifests = new AtomicBoolean();
+        // every batch holds at least one pending shipment, so the queue never needs more slots than that plus
+        // the one for the manifest retry
+        this.workers = new PipelineStage("shipping", configuration.getWorkerThreads(), configuration.getMaxPendingShipments() + 1);
+        this.running = true;
+        this.batcher = new Thread(this::run, "shipping-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    /** The tracking id of the shipment. Blocks until the shipment's batch was labelled. */
+    public String shipOrder(String address){
+        try {
+            return submitShipment(address).join();
+        } catch (CompletionException e){
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /** Completes with the tracking id once the shipment's batch was labelled. */
+    public CompletableFuture<String> submitShipment(String address){
+        if(!running){
+            return CompletableFuture.failedFuture(new IllegalStateException("Shipping manager is closed"));
+        }
+        if(!pendingShipments.tryAcquire()){
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Shipping backlog is full"));
+        }
+        Shipment shipment = new Shipment(address);
+        String name = routeOf.apply(address);
+        RouteBuffer route;
+        do {
+            route = routes.computeIfAbsent(name, RouteBuffer::new);
+            route.shipments.add(shipment);
+            // the batcher retired this buffer meanwhile and may not drain it again, move to the new one
+        } while(routes.get(name) != route && route.shipments.remove(shipment));
+        if(!running && route.shipments.remove(shipment)){
+            // close() drained the buffers before our add landed, nobody else will ever complete it
+            fail(List.of(shipment), new IllegalStateException("Shipping manager is closed"));
+            return shipment.trackingId;
+        }
+        if(route.count.incrementAndGet() >= maxBatchSize){
+            LockSupport.unpark(batcher);
+        }
+        return shipment.trackingId;
+    }
+
+    public int getPendingCount(){
+        return routes.values().stream().mapToInt(route -> route.count.get()).sum();
+    }
+
+    public int getRouteCount(){
+        return routes.size();
+    }
+
+    /** Labelled batches whose manifest the carrier refused so far, they are sent again every window. */
+    public int getUnmanifestedCount(){
+        return unmanifested.size();
+    }
+
+    /** Labels what is still buffered, then stops the batcher and the workers. */
+    @Override
+    public void close(){
+        running = false;
+        LockSupport.unpark(batcher);
+        try {
+            batcher.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        workers.close();
+    }
+
+    private void run(){
+        while(running){
+            LockSupport.parkNanos(windowNanos);
+            dispatchAll();
+        }
+        dispatchAll();
+    }
+
+    private void dispatchAll(){
+        retryManifests();
+        for(RouteBuffer route : routes.values()){
+            if(dispatchRoute(route) == 0 && routes.remove(route.name, route)){
+                // Idle for a whole window: retired so the map only holds active routes. A shipment added before
+                // the remove is taken here, one added after it sees the buffer is gone and moves to a new one.
+                dispatchRoute(route);
+            }
+        }
+    }
+
+    private int dispatchRoute(RouteBuffer route){
+        int dispatched = 0;
+        List<Shipment> batch = new ArrayList<>();
+        for(Shipment shipment; (shipment = route.shipments.poll()) != null; ){
+            route.count.decrementAndGet();
+            batch.add(shipment);
+            if(batch.size() == maxBatchSize){
+                dispatch(route.name, batch);
+                dispatched += batch.size();
+                batch = new ArrayList<>();
+            }
+        }
+        if(!batch.isEmpty()){
+            dispatch(route.name, batch);
+            dispatched += batch.size();
+        }
+        return dispatched;
+    }
+
+    private void dispatch(String route, List<Shipment> batch){
+        workers.submit(() -> {
+            label(route, batch);
+            return null;
+        }).exceptionally(failure -> {
+            // Only a closed stage rejects, its queue is as large as the backlog
+            fail(batch, failure);
+            return null;
+        });
+    }
+
+    private void label(String route, List<Shipment> batch){
+        List<String> addresses = new ArrayList<>(batch.size());
+        batch.forEach(shipment -> addresses.add(shipment.address));
+        List<String> trackingIds;
+        try {
+            trackingIds = carrier.createLabels(route, addresses);
+            if(trackingIds.size() != batch.size()){
+                throw new IllegalStateException("Carrier returned " + trackingIds.size() + " labels for " + batch.size() + " shipments");
+            }
+        } catch (RuntimeException e){
+            fail(batch, e);
+            return;
+        }
+        // The labels exist at the carrier from here on, a failed manifest does not undo the shipments
+        submitManifest(new Manifest(route, trackingIds));
+        pendingShipments.release(batch.size());
+        for(int i = 0; i < batch.size(); i++){
+            batch.get(i).trackingId.complete(trackingIds.get(i));
+        }
+    }
+
+    private void submitManifest(Manifest manifest){
+        try {
+            carrier.submitManifest(manifest.route, manifest.trackingIds);
+        } catch (RuntimeException e){
+            unmanifested.add(manifest);
+        }
+    }
+
+    // One task resends all refused manifests, so they take a single queue slot however many there are
+    private void retryManifests(){
+        if(unmanifested.isEmpty() || !retryingManifests.compareAndSet(false, true)){
+            return;
+        }
+        workers.submit(() -> {
+            List<Manifest> retries = new ArrayList<>();
+            for(Manifest manifest; (manifest = unmanifested.poll()) != null; ){
+                retries.add(manifest);
+            }
+            retries.forEach(this::submitManifest);
+            return null;
+        }).whenComplete((ignored, failure) -> retryingManifests.set(false));
+    }
+
+    private void fail(List<Shipment> batch, Throwable failure){
+        pendingShipments.release(batch.size());
+        batch.forEach(shipment -> shipment.trackingId.completeExceptionally(failure));
+    }
+
+    private static final class RouteBuffer {
+        final String name;
+        final ConcurrentLinkedQueue<Shipment> shipments = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+
+        RouteBuffer(String name){
+            this.name = name;
+        }
+    }
+
+    private static final class Manifest {
+        final String route;
+        final List<String> trackingIds;
+
+        Manifest(String route, List<String> trackingIds){
+            this.route = route;
+            this.trackingIds = trackingIds;
+        }
+    }
+
+    private static final class Shipment {
+        final String address;
+        final CompletableFuture<String> trackingId = new CompletableFuture<>();
+
+        Shipment(String address){
+            this.address = address;
+        }
+    }
+}
+
+package com.assignment.question;
+import java.util.List;
+
+public interface NotificationChannel {
+
+    /** Channel name, e.g. "email" or "sms". */
+    String getName();
+
+    /** One delivery to the recipient, messages coalesced within the window come in one call. */
+    void send(String recipient, List<String> messages);
+}
+
+package com.assignment.question;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Local channel for tests: prints the deliveries, counts them. */
+public class StubNotificationChannel implements NotificationChannel {
+
+    private final String name;
+    private final LongAdder deliveries = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+
+    public StubNotificationChannel(String name){
+        this.name = name;
+    }
+
+    @Override
+    public String getName(){
+        return name;
+    }
+
+    @Override
+    public void send(String recipient, List<String> messages){
+        // Logic to send notification
+        deliveries.increment();
+        this.messages.add(messages.size());
+        System.out.println("Sending " + name + " to " + recipient + ": " + String.join(" / ", messages));
+    }
+
+    public long getDeliveryCount(){
+        return deliveries.sum();
+    }
+
+    public long getMessageCount(){
+        return messages.sum();
+    }
+}
+
+package com.assignment.question;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket: ratePerSecond tokens a second, up to burst at once.
+ * Kept as the time at which the bucket is empty again (GCRA), so taking a token is one CAS and there is no
+ * refill thread.
+ */
+public class TokenBucket {
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong emptyAt;
+
+    public TokenBucket(double ratePerSecond, int burst){
+        if(ratePerSecond <= 0 || burst < 1){
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.burstNanos = intervalNanos * burst;
+        this.emptyAt = new AtomicLong(System.nanoTime());
+    }
+
+    /** 0 when a token was taken, otherwise the nanos until the next one is available. */
+    public long tryAcquire(){
+        while(true){
+            long now = System.nanoTime();
+            long current = emptyAt.get();
+            long next = Math.max(current, now) + intervalNanos;
+            if(next - now > burstNanos){
+                return next - now - burstNanos;
+            }
+            if(emptyAt.compareAndSet(current, next)){
+                return 0;
+            }
+        }
+    }
+
+    /** Parks until a token was taken. */
+    public void acquire(){
+        for(long wait; (wait = tryAcquire()) > 0; ){
+            LockSupport.parkNanos(wait);
+        }
+    }
+}
+
+package com.assignment.question;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+public class NotificationManagerConfiguration {
+
+    private final List<ChannelSettings> channels;
+    private final String defaultChannel;
+    private final Duration coalescingWindow;
+    private final int maxMessagesPerDelivery;
+
+    private NotificationManagerConfiguration(Builder builder){
+        this.channels = List.copyOf(builder.channels);
+        this.defaultChannel = builder.defaultChannel;
+        this.coalescingWindow = builder.coalescingWindow;
+        this.maxMessagesPerDelivery = builder.maxMessagesPerDelivery;
+    }
+
+    public static Builder builder(){
+        return new Builder();
+    }
+
+    public Duration getCoalescingWindow(){
+        return coalescingWindow;
+    }
+
+    public int getMaxMessagesPerDelivery(){
+        return maxMessagesPerDelivery;
+    }
+
+    public String getDefaultChannel(){
+        return defaultChannel;
+    }
+
+    List<ChannelSettings> getChannels(){
+        return channels;
+    }
+
+    static final class ChannelSettings {
+        final NotificationChannel channel;
+        final int workers;
+        final int queueCapacity;
+        final double ratePerSecond;
+        final int burst;
+
+        ChannelSettings(NotificationChannel channel, int workers, int queueCapacity, double ratePerSecond, int burst){
+            this.channel = channel;
+            this.workers = workers;
+            this.queueCapacity = queueCapacity;
+            this.ratePerSecond = ratePerSecond;
+            this.burst = burst;
+        }
+    }
+
+    public static class Builder {
+        private final List<ChannelSettings> channels = new ArrayList<>();
+        private String defaultChannel;
+        private Duration coalescingWindow = Duration.ofMillis(500);
+        private int maxMessagesPerDelivery = 20;
+
+        /** queueCapacity counts deliveries, ratePerSecond and burst limit the calls to the provider. */
+        public Builder addChannel(NotificationChannel channel, int workers, int queueCapacity, double ratePerSecond, int burst){
+            if(workers < 1 || queueCapacity < 1 || ratePerSecond <= 0 || burst < 1){
+                throw new IllegalArgumentException("Channel " + channel.getName() + " settings must be positive");
+            }
+            channels.add(new ChannelSettings(channel, workers, queueCapacity, ratePerSecond, burst));
+            return this;
+        }
+
+        /** The channel sendNotification(recipient, message) uses, the first channel added when not set. */
+        public Builder setDefaultChannel(String defaultChannel){
+            this.defaultChannel = defaultChannel;
+            return this;
+        }
+
+        public Builder setCoalescing(Duration window, int maxMessagesPerDelivery){
+            this.coalescingWindow = window;
+            this.maxMessagesPerDelivery = maxMessagesPerDelivery;
+            return this;
+        }
+
+        /** Without channels: an email and an sms stub channel. */
+        public NotificationManagerConfiguration build(){
+            if(coalescingWindow.isNegative() || maxMessagesPerDelivery < 1){
+                throw new IllegalArgumentException("Coalescing window must not be negative, deliveries need a message");
+            }
+            if(channels.isEmpty()){
+                addChannel(new StubNotificationChannel("email"), 4, 10_000, 200, 200);
+                addChannel(new StubNotificationChannel("sms"), 2, 10_000, 20, 20);
+            }
+            if(defaultChannel == null){
+                defaultChannel = channels.get(0).channel.getName();
+            } else if(channels.stream().noneMatch(settings -> settings.channel.getName().equals(defaultChannel))){
+                throw new IllegalArgumentException("Unknown default notification channel: " + defaultChannel);
+            }
+            return new NotificationManagerConfiguration(this);
+        }
+    }
+}
+
+package com.assignment.question;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends notifications off the caller's thread, every channel on its own.
+ * 1. Every channel has a bounded queue of deliveries and its own "notification-<channel>-N" workers. A slow or
+ *    rate-limited provider only fills its own queue.
+ * 2. The first message to a recipient opens a delivery which goes out one coalescing window later, messages to
+ *    that recipient arriving before then are added to it (up to maxMessagesPerDelivery).
+ * 3. A worker takes a token from the channel's TokenBucket before every delivery.
+ * 4. sendNotification() never blocks: a full queue drops the notification and counts it.
+ * 5. A notification goes out on one channel, the default one unless the caller names another.
+ */
+public class NotificationManager implements AutoCloseable {
+
+    private final Map<String, ChannelDispatcher> channels;
+    private final ChannelDispatcher defaultChannel;
+    private final long windowNanos;
+    private final int maxMessagesPerDelivery;
+    private volatile boolean running;
+
+    public NotificationManager(){
+        this(NotificationManagerConfiguration.builder().build());
+    }
+
+    public NotificationManager(NotificationManagerConfiguration configuration){
+        this.windowNanos = configuration.getCoalescingWindow().toNanos();
+        this.maxMessagesPerDelivery = configuration.getMaxMessagesPerDelivery();
+        this.running = true;
+        Map<String, ChannelDispatcher> dispatchers = new LinkedHashMap<>();
+        for(NotificationManagerConfiguration.ChannelSettings settings : configuration.getChannels()){
+            dispatchers.put(settings.channel.getName(), new ChannelDispatcher(settings));
+        }
+        this.channels = dispatchers;
+        this.defaultChannel = dispatchers.get(configuration.getDefaultChannel());
+    }
+
+    /** To the recipient on the default channel, false when the notification was dropped. */
+    public boolean sendNotification(String recipient, String message){
+        return defaultChannel.offer(recipient, message);
+    }
+
+    /** false when the notification was dropped: the channel's queue is full or the manager is closed. */
+    public boolean sendNotification(String channel, String recipient, String message){
+        ChannelDispatcher dispatcher = channels.get(channel);
+        if(dispatcher == null){
+            throw new IllegalArgumentException("Unknown notification channel: " + channel);
+        }
+        return dispatcher.offer(recipient, message);
+    }
+
+    public long getDeliveredCount(String channel){
+        return channels.get(channel).delivered.sum();
+    }
+
+    public long getCoalescedCount(String channel){
+        return channels.get(channel).coalesced.sum();
+    }
+
+    public long getDroppedCount(String channel){
+        return channels.get(channel).dropped.sum();
+    }
+
+    /** Sends what is queued straight away (still rate limited), then stops the workers. */
+    @Override
+    public void close(){
+        running = false;
+        for(ChannelDispatcher channel : channels.values()){
+            channel.workers.forEach(LockSupport::unpark);
+        }
+        for(ChannelDispatcher channel : channels.values()){
+            for(Thread worker : channel.workers){
+                try {
+                    worker.join();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private final class ChannelDispatcher {
+        final NotificationChannel channel;
+        final TokenBucket rateLimit;
+        final ArrayBlockingQueue<Delivery> queue;
+        final ConcurrentHashMap<String, Delivery> open = new ConcurrentHashMap<>();
+        final List<Thread> workers = new ArrayList<>();
+        final LongAdder delivered = new LongAdder();
+        final LongAdder coalesced = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        final LongAdder failed = new LongAdder();
+
+        ChannelDispatcher(NotificationManagerConfiguration.ChannelSettings settings){
+            this.channel = settings.channel;
+            this.rateLimit = new TokenBucket(settings.ratePerSecond, settings.burst);
+            this.queue = new ArrayBlockingQueue<>(settings.queueCapacity);
+            for(int i = 1; i <= settings.workers; i++){
+                Thread worker = new Thread(this::work, "notification-" + channel.getName() + "-" + i);
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+        }
+
+        boolean offer(String recipient, String message){
+            if(!running){
+                dropped.increment();
+                return false;
+            }
+            while(true){
+                Delivery delivery = open.get(recipient);
+                if(delivery != null && delivery.add(message)){
+                    coalesced.increment();
+                    return true;
+                }
+                Delivery fresh = new Delivery(recipient, message, System.nanoTime() + windowNanos);
+                boolean opened = delivery == null ? open.putIfAbsent(recipient, fresh) == null : open.replace(recipient, delivery, fresh);
+                if(!opened){
+                    continue;
+                }
+                // close() may have let the workers run out between our running check and the offer
+                if(!queue.offer(fresh) || (!running && queue.remove(fresh))){
+                    open.remove(recipient, fresh);
+                    dropped.add(fresh.close().size());
+                    return false;
+                }
+                return true;
+            }
+        }
+
+        private void work(){
+            while(running || !queue.isEmpty()){
+                Delivery delivery;
+                try {
+                    delivery = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e){
+                    return;
+                }
+                if(delivery == null){
+                    continue;
+                }
+                // Deliveries are queued in the order they were opened, so they are also due in that order
+                for(long wait; running && (wait = delivery.dueAt - System.nanoTime()) > 0; ){
+                    LockSupport.parkNanos(wait);
+                }
+                open.remove(delivery.recipient, delivery);
+                List<String> messages = delivery.close();
+                rateLimit.acquire();
+                try {
+                    channel.send(delivery.recipient, messages);
+                    delivered.increment();
+                } catch (Throwable e){
+                    // A failed provider call, an Error included, must not kill the worker, the delivery is lost
+                    failed.increment();
+                }
+            }
+        }
+    }
+
+    private final class Delivery {
+        final String recipient;
+        final long dueAt;
+        private final List<String> messages = new ArrayList<>(2);
+        private boolean closed;
+
+        Delivery(String recipient, String message, long dueAt){
+            this.recipient = recipient;
+            this.dueAt = dueAt;
+            messages.add(message);
+        }
+
+        synchronized boolean add(String message){
+            if(closed || messages.size() >= maxMessagesPerDelivery){
+                return false;
+            }
+            messages.add(message);
+            return true;
+        }
+
+        synchronized List<String> close(){
+            closed = true;
+            return messages;
+        }
+    }
+}
+
+package com.assignment.question;
+
+/** An order the pipeline could not process, e.g. the product is out of stock. */
+public class OrderProcessingException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public OrderProcessingException(String message){
+        super(message);
+    }
+
+    public OrderProcessingException(String message, Throwable cause){
+        super(message, cause);
+    }
+}
+
+package com.assignment.question;
+
+public class OrderResult {
+
+    private final String customerId;
+    private final String productId;
+    private final String paymentId;
+    private final String trackingId;
+
+    public OrderResult(String customerId, String productId, String paymentId, String trackingId){
+        this.customerId = customerId;
+        this.productId = productId;
+        this.paymentId = paymentId;
+        this.trackingId = trackingId;
+    }
+
+    public String getCustomerId(){
+        return customerId;
+    }
+
+    public String getProductId(){
+        return productId;
+    }
+
+    public String getPaymentId(){
+        return paymentId;
+    }
+
+    public String getTrackingId(){
+        return trackingId;
+    }
+}
+
+package com.assignment.question;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/** One step of the order pipeline: a fixed number of threads working off a bounded queue. */
+public class PipelineStage implements AutoCloseable {
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+
+    public PipelineStage(String name, int threads, int queueCapacity){
+        if(threads < 1 || queueCapacity < 1){
+            throw new IllegalArgumentException("Stage " + name + " needs at least one thread and one queue slot");
+        }
+        this.name = name;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "order-" + name + "-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /** Runs task on this stage, the future fails with RejectedExecutionException when the queue is full. */
+    public <T> CompletableFuture<T> submit(Supplier<T> task){
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(task.get());
+                } catch (Throwable e){
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e){
+            result.completeExceptionally(new RejectedExecutionException("Stage " + name + " is full", e));
+        }
+        return result;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public int getQueuedCount(){
+        return executor.getQueue().size();
+    }
+
+    /** Finishes the queued tasks, then stops the threads. */
+    @Override
+    public void close(){
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+package com.assignment.question;
+
+public enum OrderExecutionMode {
+    STAGED,
+    VIRTUAL_THREADS
+}
+
+package com.assignment.question;
+import java.time.Duration;
+
+/**
+ * How the order pipeline runs: threads and queue capacity of every stage, reservation batching, execution mode.
+ * Shipping and notification have no stage here, ShippingManager and NotificationManager run on workers of their own.
+ */
+public class OrderPipelineConfiguration {
+
+    private final OrderExecutionMode executionMode;
+    private final int maxInFlightOrders;
+    private final Duration reservationWindow;
+    private final int reservationBatchSize;
+    private final StageSize paymentStage;
+    private final int maxOrderIds;
+    private final Duration orderIdTtl;
+
+    private OrderPipelineConfiguration(Builder builder){
+        this.executionMode = builder.executionMode;
+        this.maxInFlightOrders = builder.maxInFlightOrders;
+        this.maxOrderIds = builder.maxOrderIds;
+        this.orderIdTtl = builder.orderIdTtl;
+        this.reservationWindow = builder.reservationWindow;
+        this.reservationBatchSize = builder.reservationBatchSize;
+        this.paymentStage = builder.paymentStage;
+    }
+
+    public static Builder builder(){
+        return new Builder();
+    }
+
+    public OrderExecutionMode getExecutionMode(){
+        return executionMode;
+    }
+
+    public int getMaxInFlightOrders(){
+        return maxInFlightOrders;
+    }
+
+    public Duration getReservationWindow(){
+        return reservationWindow;
+    }
+
+    public int getReservationBatchSize(){
+        return reservationBatchSize;
+    }
+
+    public int getMaxOrderIds(){
+        return maxOrderIds;
+    }
+
+    public Duration getOrderIdTtl(){
+        return orderIdTtl;
+    }
+
+    PipelineStage newPaymentStage(){
+        return paymentStage.newStage("payment");
+    }
+
+    private static final class StageSize {
+        final int threads;
+        final int queueCapacity;
+
+        StageSize(int threads, int queueCapacity){
+            this.threads = threads;
+            this.queueCapacity = queueCapacity;
+        }
+
+        PipelineStage newStage(String name){
+            return new PipelineStage(name, threads, queueCapacity);
+        }
+    }
+
+    public static class Builder {
+        private OrderExecutionMode executionMode = OrderExecutionMode.STAGED;
+        private int maxInFlightOrders = 50_000;
+        private Duration reservationWindow = Duration.ofMillis(2);
+        private int reservationBatchSize = 512;
+        private StageSize paymentStage = new StageSize(4, 1024);
+        private int maxOrderIds = 100_000;
+        private Duration orderIdTtl = Duration.ofHours(24);
+
+        public Builder setExecutionMode(OrderExecutionMode executionMode){
+            this.executionMode = executionMode;
+            return this;
+        }
+
+        /** VIRTUAL_THREADS only: orders beyond this many in flight are rejected. */
+        public Builder setMaxInFlightOrders(int maxInFlightOrders){
+            this.maxInFlightOrders = maxInFlightOrders;
+            return this;
+        }
+
+        /** How long reservations are collected before one reserveBatch(), and how many trigger it early. */
+        public Builder setReservationBatching(Duration window, int batchSize){
+            this.reservationWindow = window;
+            this.reservationBatchSize = batchSize;
+            return this;
+        }
+
+        public Builder setPaymentStage(int threads, int queueCapacity){
+            this.paymentStage = new StageSize(threads, queueCapacity);
+            return this;
+        }
+
+        /** An order id is remembered for ttl, the oldest finished orders are dropped beyond maxOrderIds. */
+        public Builder setOrderIndex(int maxOrderIds, Duration ttl){
+            this.maxOrderIds = maxOrderIds;
+            this.orderIdTtl = ttl;
+            return this;
+        }
+
+        public OrderPipelineConfiguration build(){
+            if(maxInFlightOrders < 1){
+                throw new IllegalArgumentException("maxInFlightOrders must be positive");
+            }
+            if(maxOrderIds < 1 || orderIdTtl.isNegative() || orderIdTtl.isZero()){
+                throw new IllegalArgumentException("Order index settings must be positive");
+            }
+            return new OrderPipelineConfiguration(this);
+        }
+    }
+}
+
+package com.assignment.question;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+public class OrderProcessingFacade implements AutoCloseable {
+
+    private static final int REFUND_ATTEMPTS = 3;
+
+    private final PaymentProcessor paymentProcessor;
+    private final ShippingManager shippingManager;
+    private final NotificationManager notificationManager;
+    private final FraudDetector fraudDetector;
+    private final InventoryReservationBatcher reservations;
+    private final PipelineStage paymentStage;
+    private final VirtualThreadOrderRunner virtualThreadRunner;
+    private final ConcurrentHashMap<String, Order> orders;
+    private final ConcurrentLinkedQueue<Order> ordersByAge;
+    private final int maxOrderIds;
+    private final long orderIdTtlNanos;
+    private final Set<CompletableFuture<OrderResult>> inFlightOrders;
+    private final boolean ownsSubsystems;
+    private volatile boolean running;
+
+    /** Creates its own subsystems and closes them in close(). */
+    public OrderProcessingFacade(){
+        this(new InventoryManager(), new PaymentProcessor(), new ShippingManager(), new NotificationManager(),
+                new FraudDetector(), OrderPipelineConfiguration.builder().build(), true);
+    }
+
+    public OrderProcessingFacade(InventoryManager inventoryManager, PaymentProcessor paymentProcessor,
+                                 ShippingManager shippingManager, NotificationManager notificationManager,
+                                 OrderPipelineConfiguration configuration){
+        this(inventoryManager, paymentProcessor, shippingManager, notificationManager, new FraudDetector(), configuration);
+    }
+
+    public OrderProcessingFacade(InventoryManager inventoryManager, PaymentProcessor paymentProcessor,
+                                 ShippingManager shippingManager, NotificationManager notificationManager,
+                                 FraudDetector fraudDetector, OrderPipelineConfiguration configuration){
+        this(inventoryManager, paymentProcessor, shippingManager, notificationManager, fraudDetector, configuration, false);
+    }
+
+    // Subsystems passed in belong to the caller, they may be shared with other facades and stay open in close()
+    private OrderProcessingFacade(InventoryManager inventoryManager, PaymentProcessor paymentProcessor,
+                                  ShippingManager shippingManager, NotificationManager notificationManager,
+                                  FraudDetector fraudDetector, OrderPipelineConfiguration configuration,
+                                  boolean ownsSubsystems){
+        this.paymentProcessor = paymentProcessor;
+        this.shippingManager = shippingManager;
+        this.notificationManager = notificationManager;
+        this.fraudDetector = fraudDetector;
+        this.reservations = new InventoryReservationBatcher(inventoryManager,
+                configuration.getReservationWindow(), configuration.getReservationBatchSize());
+        if(configuration.getExecutionMode() == OrderExecutionMode.VIRTUAL_THREADS){
+            this.paymentStage = null;
+            this.virtualThreadRunner = new VirtualThreadOrderRunner(reservations, fraudDetector, paymentProcessor,
+                    shippingManager, notificationManager, configuration.getMaxInFlightOrders());
+        } else {
+            this.paymentStage = configuration.newPaymentStage();
+            this.virtualThreadRunner = null;
+        }
+        this.orders = new ConcurrentHashMap<>();
+        this.ordersByAge = new ConcurrentLinkedQueue<>();
+        this.maxOrderIds = configuration.getMaxOrderIds();
+        this.orderIdTtlNanos = configuration.getOrderIdTtl().toNanos();
+        this.inFlightOrders = ConcurrentHashMap.newKeySet();
+        this.ownsSubsystems = ownsSubsystems;
+        this.running = true;
+    }
+
+    /** Every call is a new order, see processOrder(orderId, ...) for retries. customerId gets the notification. */
+    public CompletableFuture<OrderResult> processOrder(String customerId, String productId, double amount, String address){
+        return submitOrder(UUID.randomUUID().toString(), customerId, productId, amount, address);
+    }
+
+    /**
+     * A retried or concurrent call with the same orderId gets the first call's order back, it never reserves,
+     * charges or ships twice. Only a failed order runs again, and only once its undo is done.
+     * The same orderId with another customer, product, amount or address is refused.
+     */
+    public CompletableFuture<OrderResult> processOrder(String orderId, String customerId, String productId,
+                                                      double amount, String address){
+        long now = System.nanoTime();
+        evictExpired(now);
+        Order order = new Order(orderId, customerId, productId, amount, address, now);
+        Order existing = orders.putIfAbsent(orderId, order);
+        if(existing != null){
+            if(!existing.isSameOrder(customerId, productId, amount, address)){
+                return CompletableFuture.failedFuture(new OrderProcessingException(
+                        "Order id " + orderId + " was used for another order"));
+            }
+            return existing.result;
+        }
+        ordersByAge.add(order);
+        submitOrder(orderId, customerId, productId, amount, address).whenComplete((result, failure) -> {
+            if(failure != null){
+                orders.remove(orderId, order);
+                order.result.completeExceptionally(failure);
+            } else {
+                order.result.complete(result);
+            }
+        });
+        return order.result;
+    }
+
+    // Every order is tracked until it completed, close() waits for them
+    private CompletableFuture<OrderResult> submitOrder(String orderId, String customerId, String productId,
+                                                       double amount, String address){
+        if(!running){
+            return CompletableFuture.failedFuture(new IllegalStateException("Order facade is closed"));
+        }
+        CompletableFuture<OrderResult> order = new CompletableFuture<>();
+        inFlightOrders.add(order);
+        if(!running && inFlightOrders.remove(order)){
+            // close() took its snapshot of the orders in flight before our add landed, it would not wait for us
+            order.completeExceptionally(new IllegalStateException("Order facade is closed"));
+            return order;
+        }
+        runOrder(orderId, customerId, productId, amount, address).whenComplete((result, failure) -> {
+            inFlightOrders.remove(order);
+            if(failure != null){
+                order.completeExceptionally(failure);
+            } else {
+                order.complete(result);
+            }
+        });
+        return order;
+    }
+
+    // orderId is the payment's idempotency key as well
+    private CompletableFuture<OrderResult> runOrder(String orderId, String customerId, String productId,
+                                                    double amount, String address){
+        if(virtualThreadRunner != null){
+            return virtualThreadRunner.processOrder(orderId, customerId, productId, amount, address);
+        }
+        CompletableFuture<Boolean> inStock = reservations.reserve(productId, 1);
+        CompletableFuture<Boolean> approved = paymentStage.submit(() -> fraudDetector.approve(productId, amount, address));
+        CompletableFuture<OrderResult> order = CompletableFuture.allOf(inStock, approved)
+                .handle((done, failure) -> done)
+                .thenCompose(done -> {
+                    Throwable failure = failureOf(inStock, approved, productId);
+                    if(failure != null){
+                        return failAfter(undo(inStock, productId, orderId, null), failure);
+                    }
+                    // Charged only once the unit is reserved, an out of stock order never needs a refund
+                    return paymentProcessor.submitPayment(orderId, amount)
+                            .handle((paymentId, paymentFailure) -> paymentFailure != null
+                                    ? OrderProcessingFacade.<OrderResult>failAfter(undo(inStock, productId, orderId, null), paymentFailure)
+                                    : ship(inStock, customerId, productId, orderId, paymentId, address))
+                            .thenCompose(result -> result);
+                });
+        // Returned after the notification was handed over, so close() never stops the notifications ahead of it
+        return order.whenComplete((result, failure) -> notificationManager.sendNotification(customerId, failure == null
+                ? "Your order has been processed successfully"
+                : "Your order could not be processed"));
+    }
+
+    /**
+     * Stops taking orders and waits for the ones in flight, also those waiting on a payment batch or a shipment.
+     * Then stops every stage, and the subsystems this facade created, in dependency order: payments and shipments
+     * are only closed once no order submits to them, notifications last because finished orders still send.
+     */
+    @Override
+    public void close(){
+        running = false;
+        CompletableFuture.allOf(inFlightOrders.toArray(new CompletableFuture<?>[0]))
+                .handle((done, failure) -> done)
+                .join();
+        if(virtualThreadRunner != null){
+            virtualThreadRunner.close();
+        } else {
+            paymentStage.close();
+        }
+        reservations.close();
+        if(ownsSubsystems){
+            paymentProcessor.close();
+            shippingManager.close();
+            notificationManager.close();
+        }
+    }
+
+    // Order ids are added in time order, so the expired and the oldest ones are at the head of ordersByAge
+    private void evictExpired(long now){
+        for(Order oldest; (oldest = ordersByAge.peek()) != null; ){
+            boolean expired = now - oldest.createdAt > orderIdTtlNanos;
+            boolean overLimit = orders.size() >= maxOrderIds;
+            boolean forgotten = orders.get(oldest.orderId) != oldest;
+            if(!forgotten && !(oldest.result.isDone() && (expired || overLimit))){
+                return;
+            }
+            if(ordersByAge.remove(oldest)){
+                orders.remove(oldest.orderId, oldest);
+            }
+        }
+    }
+
+    private CompletableFuture<OrderResult> ship(CompletableFuture<Boolean> inStock, String customerId, String productId,
+                                                String orderId, String paymentId, String address){
+        return shippingManager.submitShipment(address)
+                .handle((trackingId, shippingFailure) -> shippingFailure != null
+                        ? OrderProcessingFacade.<OrderResult>failAfter(undo(inStock, productId, orderId, paymentId), shippingFailure)
+                        : CompletableFuture.completedFuture(new OrderResult(customerId, productId, paymentId, trackingId)))
+                .thenCompose(result -> result);
+    }
+
+    private static Throwable failureOf(CompletableFuture<Boolean> inStock, CompletableFuture<Boolean> approved, String productId){
+        if(inStock.isCompletedExceptionally()){
+            return causeOf(inStock);
+        }
+        if(!inStock.join()){
+            return new OrderProcessingException("Product out of stock: " + productId);
+        }
+        if(approved.isCompletedExceptionally()){
+            return causeOf(approved);
+        }
+        return approved.join() ? null : new OrderProcessingException("Order rejected by fraud check: " + productId);
+    }
+
+    private static Throwable causeOf(CompletableFuture<?> failed){
+        try {
+            failed.join();
+            return null;
+        } catch (CompletionException e){
+            return e.getCause();
+        }
+    }
+
+    // The order fails once it was undone, a refund which failed for good is attached to its failure
+    private static <T> CompletableFuture<T> failAfter(CompletableFuture<Void> undone, Throwable failure){
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        return undone.handle((done, undoFailure) -> {
+            if(undoFailure != null){
+                cause.addSuppressed(undoFailure instanceof CompletionException ? undoFailure.getCause() : undoFailure);
+            }
+            return cause;
+        }).thenCompose(CompletableFuture::failedFuture);
+    }
+
+    private CompletableFuture<Void> undo(CompletableFuture<Boolean> inStock, String productId, String orderId, String paymentId){
+        reservations.releaseIfReserved(inStock, productId, 1);
+        return paymentId == null ? CompletableFuture.completedFuture(null) : refund(orderId, paymentId, 1);
+    }
+
+    // A refund must not be lost: it runs right here when the payment stage is full, a failed one is tried again
+    private CompletableFuture<Void> refund(String orderId, String paymentId, int attempt){
+        return paymentStage.submit(() -> {
+            paymentProcessor.refundPayment(orderId, paymentId);
+            return (Void) null;
+        }).handle((done, failure) -> {
+            if(failure instanceof RejectedExecutionException){
+                try {
+                    paymentProcessor.refundPayment(orderId, paymentId);
+                    return null;
+                } catch (RuntimeException e){
+                    failure = e;
+                }
+            }
+            return failure;
+        }).thenCompose(failure -> {
+            if(failure == null){
+                return CompletableFuture.completedFuture(null);
+            }
+            if(attempt < REFUND_ATTEMPTS){
+                return refund(orderId, paymentId, attempt + 1);
+            }
+            return CompletableFuture.failedFuture(new OrderProcessingException("Refund of payment " + paymentId + " failed", failure));
+        });
+    }
+
+    private static final class Order {
+        final String orderId;
+        final String customerId;
+        final String productId;
+        final double amount;
+        final String address;
+        final long createdAt;
+        final CompletableFuture<OrderResult> result = new CompletableFuture<>();
+
+        Order(String orderId, String customerId, String productId, double amount, String address, long createdAt){
+            this.orderId = orderId;
+            this.customerId = customerId;
+            this.productId = productId;
+            this.amount = amount;
+            this.address = address;
+            this.createdAt = createdAt;
+        }
+
+        boolean isSameOrder(String customerId, String productId, double amount, String address){
+            return Objects.equals(this.customerId, customerId) && Objects.equals(this.productId, productId)
+                    && Double.compare(this.amount, amount) == 0 && Objects.equals(this.address, address);
+        }
+    }
+}
+
+package com.assignment.question;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OrderExecutionMode.VIRTUAL_THREADS: one virtual thread per order, the order itself is plain blocking code.
+ * Needs Java 21 with --enable-preview, StructuredTaskScope is a preview API there.
+ * 1. Reservation and fraud check are forked in a StructuredTaskScope.ShutdownOnFailure: if one fails (out of stock,
+ *    rejected) the scope shuts down and interrupts the other, join() returns once both are done or cancelled.
+ * 2. Payment and shipping follow in order, blocking a virtual thread only unmounts it from its carrier thread.
+ * 3. maxInFlightOrders bounds the orders running at once, beyond it processOrder() fails with RejectedExecutionException.
+ */
+public class VirtualThreadOrderRunner implements AutoCloseable {
+
+    private static final int REFUND_ATTEMPTS = 3;
+
+    private final InventoryReservationBatcher reservations;
+    private final FraudDetector fraudDetector;
+    private final PaymentProcessor paymentProcessor;
+    private final ShippingManager shippingManager;
+    private final NotificationManager notificationManager;
+    private final Semaphore inFlightOrders;
+    private final ExecutorService virtualThreads;
+
+    public VirtualThreadOrderRunner(InventoryReservationBatcher reservations, FraudDetector fraudDetector,
+                                    PaymentProcessor paymentProcessor, ShippingManager shippingManager,
+                                    NotificationManager notificationManager, int maxInFlightOrders){
+        this.reservations = reservations;
+        this.fraudDetector = fraudDetector;
+        this.paymentProcessor = paymentProcessor;
+        this.shippingManager = shippingManager;
+        this.notificationManager = notificationManager;
+        this.inFlightOrders = new Semaphore(maxInFlightOrders);
+        this.virtualThreads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("order-", 0).factory());
+    }
+
+    public CompletableFuture<OrderResult> processOrder(String orderId, String customerId, String productId,
+                                                      double amount, String address){
+        if(!inFlightOrders.tryAcquire()){
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Too many orders in flight"));
+        }
+        CompletableFuture<OrderResult> result = new CompletableFuture<>();
+        try {
+            virtualThreads.execute(() -> {
+                try {
+                    result.complete(process(orderId, customerId, productId, amount, address));
+                } catch (Throwable e){
+                    result.completeExceptionally(e);
+                } finally {
+                    inFlightOrders.release();
+                }
+            });
+        } catch (RejectedExecutionException e){
+            inFlightOrders.release();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /** Waits for the orders in flight, then stops. */
+    @Override
+    public void close(){
+        virtualThreads.shutdown();
+        try {
+            virtualThreads.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private OrderResult process(String orderId, String customerId, String productId, double amount, String address)
+            throws InterruptedException {
+        CompletableFuture<Boolean> reservation = reservations.reserve(productId, 1);
+        String paymentId = null;
+        boolean processed = false;
+        try {
+            try(StructuredTaskScope.ShutdownOnFailure scope = new StructuredTaskScope.ShutdownOnFailure()){
+                scope.fork(() -> {
+                    if(!reservation.get()){
+                        throw new OrderProcessingException("Product out of stock: " + productId);
+                    }
+                    return null;
+                });
+                scope.fork(() -> {
+                    if(!fraudDetector.approve(productId, amount, address)){
+                        throw new OrderProcessingException("Order rejected by fraud check: " + productId);
+                    }
+                    return null;
+                });
+                scope.join().throwIfFailed(failure -> failure instanceof OrderProcessingException
+                        ? (OrderProcessingException) failure
+                        : new OrderProcessingException("Order checks failed: " + productId, failure));
+            }
+            paymentId = paymentProcessor.processPayment(orderId, amount);
+            String trackingId = shippingManager.shipOrder(address);
+            processed = true;
+            return new OrderResult(customerId, productId, paymentId, trackingId);
+        } catch (Throwable failure){
+            reservations.releaseIfReserved(reservation, productId, 1);
+            if(paymentId != null){
+                refund(orderId, paymentId, failure);
+            }
+            throw failure;
+        } finally {
+            notificationManager.sendNotification(customerId, processed ? "Your order has been processed successfully" : "Your order could not be processed");
+        }
+    }
+
+    // Tried again when it fails, a refund which failed for good is attached to the order's failure
+    private void refund(String orderId, String paymentId, Throwable orderFailure){
+        for(int attempt = 1; ; attempt++){
+            try {
+                paymentProcessor.refundPayment(orderId, paymentId);
+                return;
+            } catch (RuntimeException e){
+                if(attempt == REFUND_ATTEMPTS){
+                    orderFailure.addSuppressed(new OrderProcessingException("Refund of payment " + paymentId + " failed", e));
+                    return;
+                }
+            }
+        }
+    }
+}
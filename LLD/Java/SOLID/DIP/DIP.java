@@ -175,5 +175,226 @@ const smsService = new Sms();
 const notification = new Notification([emailService, smsService]);
 notification.sendNotification("Hello!");
 
+/** Issues with the serial loop
+ * 1. sendNotification() calls one service after the other: a slow service adds its latency to all the others.
+ * 2. An exception thrown by one service aborts the forEach, the services after it never get the message.
+ */
+
+ /** Step 3: Parallel fan-out with per-service timeouts */
+
+/**
+ * 1. IMessage may now return a Promise, services that talk to a provider finish asynchronously (Email and Sms
+ *    from Step 2 still fit the interface unchanged).
+ * 2. sendNotification() starts every service at once and waits for all of them with Promise.allSettled():
+ *    the total latency is the slowest service, not the sum.
+ * 3. Every service gets its own timeout. A service which takes longer is reported as "timedOut" and not waited for.
+ * 4. A failing service never stops the others, the result is an outcome per channel instead of a thrown error.
+ */
+
+interface IMessage {
+    sendMessage(message: string): void | Promise<void>;
+}
+
+type ChannelStatus = "sent" | "failed" | "timedOut";
+
+interface ChannelOutcome {
+    channel: string;
+    status: ChannelStatus;
+    durationMs: number;
+    error?: string;
+}
+
+interface MessageServiceRegistration {
+    channel: string;
+    service: IMessage;
+    timeoutMs: number;
+}
+
+class Notification {
+    private registrations: MessageServiceRegistration[];
+
+    constructor(registrations: MessageServiceRegistration[]) {
+        this.registrations = registrations;
+    }
+
+    async sendNotification(message: string): Promise<ChannelOutcome[]> {
+        const outcomes = await Promise.allSettled(
+            this.registrations.map(registration => this.send(registration, message))
+        );
+        // send() never rejects, allSettled only guards against a service breaking that promise
+        return outcomes.map((outcome, i) => outcome.status === "fulfilled"
+            ? outcome.value
+            : { channel: this.registrations[i].channel, status: "failed", durationMs: 0, error: String(outcome.reason) });
+    }
+
+    private async send(registration: MessageServiceRegistration, message: string): Promise<ChannelOutcome> {
+        const start = Date.now();
+        let timer: ReturnType<typeof setTimeout> | undefined;
+        const timeout = new Promise<ChannelStatus>(resolve => {
+            timer = setTimeout(() => resolve("timedOut"), registration.timeoutMs);
+        });
+        try {
+            // Promise.resolve().then() turns a synchronous throw into a rejection as well
+            const sent = Promise.resolve().then(() => registration.service.sendMessage(message)).then((): ChannelStatus => "sent");
+            const status = await Promise.race([sent, timeout]);
+            return { channel: registration.channel, status, durationMs: Date.now() - start };
+        } catch (error) {
+            return { channel: registration.channel, status: "failed", durationMs: Date.now() - start, error: String(error) };
+        } finally {
+            clearTimeout(timer);
+        }
+    }
+}
+
+// Usage
+const notification = new Notification([
+    { channel: "email", service: new Email(), timeoutMs: 2000 },
+    { channel: "sms", service: new Sms(), timeoutMs: 500 },
+]);
+notification.sendNotification("Hello!").then(outcomes => {
+    outcomes.filter(outcome => outcome.status !== "sent")
+        .forEach(outcome => console.log(`${outcome.channel} ${outcome.status}: ${outcome.error ?? ""}`));
+});
+
+
+ /** Step 4: Broadcast to millions of recipients */
+
+/**
+ * Notification above sends one message to one implicit recipient. A campaign sends the same template to every
+ * recipient of a list that does not fit in memory, and must survive a crash half way through.
+ * 1. The recipients are streamed: RecipientSource yields them as an AsyncIterable, only a batch per shard is in memory.
+ * 2. The template is compiled once per locale into its fixed parts. Per recipient only the placeholders are filled in.
+ * 3. The list is split into shards (e.g. position % shardCount, a query per shard in a database). Every shard is
+ *    read and sent by its own worker in position order, and the workers run concurrently.
+ * 4. After every batch a shard saves the position it has finished in the CheckpointStore. A restarted campaign
+ *    reads every shard after its checkpoint. Recipients of the batch in flight during a crash get the message again,
+ *    so delivery is at least once.
+ * 5. A failed recipient is counted and skipped, it never stops the campaign.
+ */
+
+interface Recipient {
+    id: string;
+    position: number;
+    locale: string;
+    fields: Record<string, string>;
+}
+
+interface IMessage {
+    sendMessage(message: string, recipient?: Recipient): void | Promise<void>;
+}
+
+interface RecipientSource {
+    /** The recipients of one shard with a position after afterPosition, in position order. */
+    read(shard: number, shardCount: number, afterPosition: number): AsyncIterable<Recipient>;
+}
+
+interface CheckpointStore {
+    load(campaignId: string, shard: number): Promise<number | undefined>;
+    save(campaignId: string, shard: number, position: number): Promise<void>;
+}
+
+class InMemoryCheckpointStore implements CheckpointStore {
+    private positions = new Map<string, number>();
+
+    async load(campaignId: string, shard: number): Promise<number | undefined> {
+        return this.positions.get(`${campaignId}/${shard}`);
+    }
+
+    async save(campaignId: string, shard: number, position: number): Promise<void> {
+        this.positions.set(`${campaignId}/${shard}`, position);
+    }
+}
+
+/** Texts per locale with {{field}} placeholders, e.g. "Hello {{name}}!". */
+class LocalizedTemplate {
+    private compiled = new Map<string, string[]>();
+
+    constructor(private texts: Record<string, string>, private defaultLocale: string) {}
+
+    render(recipient: Recipient): string {
+        const parts = this.partsFor(recipient.locale);
+        // parts alternate: fixed text, field name, fixed text, ...
+        let message = parts[0];
+        for (let i = 1; i < parts.length; i += 2) {
+            message += (recipient.fields[parts[i]] ?? "") + parts[i + 1];
+        }
+        return message;
+    }
+
+    private partsFor(locale: string): string[] {
+        let parts = this.compiled.get(locale);
+        if (parts === undefined) {
+            const text = this.texts[locale] ?? this.texts[this.defaultLocale];
+            parts = text.split(/\{\{(\w+)\}\}/);
+            this.compiled.set(locale, parts);
+        }
+        return parts;
+    }
+}
+
+interface BroadcastReport {
+    sent: number;
+    failed: number;
+    resumedShards: number;
+}
+
+class BroadcastNotification {
+    constructor(
+        private messageService: IMessage,
+        private checkpoints: CheckpointStore,
+        private shardCount: number,
+        private batchSize: number,
+    ) {}
+
+    async broadcast(campaignId: string, template: LocalizedTemplate, source: RecipientSource): Promise<BroadcastReport> {
+        const report: BroadcastReport = { sent: 0, failed: 0, resumedShards: 0 };
+        const shards = Array.from({ length: this.shardCount }, (_, shard) =>
+            this.runShard(campaignId, shard, template, source, report));
+        await Promise.all(shards);
+        return report;
+    }
+
+    private async runShard(campaignId: string, shard: number, template: LocalizedTemplate,
+                           source: RecipientSource, report: BroadcastReport): Promise<void> {
+        const checkpoint = await this.checkpoints.load(campaignId, shard);
+        if (checkpoint !== undefined) {
+            report.resumedShards++;
+        }
+        let batch: Recipient[] = [];
+        for await (const recipient of source.read(shard, this.shardCount, checkpoint ?? -1)) {
+            batch.push(recipient);
+            if (batch.length === this.batchSize) {
+                await this.sendBatch(campaignId, shard, template, batch, report);
+                batch = [];
+            }
+        }
+        if (batch.length > 0) {
+            await this.sendBatch(campaignId, shard, template, batch, report);
+        }
+    }
+
+    private async sendBatch(campaignId: string, shard: number, template: LocalizedTemplate,
+                            batch: Recipient[], report: BroadcastReport): Promise<void> {
+        const outcomes = await Promise.allSettled(batch.map(recipient =>
+            Promise.resolve().then(() => this.messageService.sendMessage(template.render(recipient), recipient))));
+        outcomes.forEach(outcome => outcome.status === "fulfilled" ? report.sent++ : report.failed++);
+        await this.checkpoints.save(campaignId, shard, batch[batch.length - 1].position);
+    }
+}
+
+// Usage: a generated list stands in for a database query per shard
+const recipients: RecipientSource = {
+    async *read(shard: number, shardCount: number, afterPosition: number) {
+        const first = afterPosition < shard ? shard : afterPosition + shardCount - ((afterPosition - shard) % shardCount);
+        for (let position = first; position < 10_000_000; position += shardCount) {
+            yield { id: `user-${position}`, position, locale: position % 3 === 0 ? "de" : "en", fields: { name: `User ${position}` } };
+        }
+    },
+};
+const template = new LocalizedTemplate({ en: "Hello {{name}}, our sale starts today!", de: "Hallo {{name}}, heute beginnt unser Sale!" }, "en");
+const broadcast = new BroadcastNotification(new Email(), new InMemoryCheckpointStore(), 8, 500);
+broadcast.broadcast("spring-sale", template, recipients)
+    .then(report => console.log(`Sent ${report.sent}, failed ${report.failed}`));
+
 
 /** Link: https://h-benkachoud.medium.com/dependency-inversion-principle-dip-fc489ac42f4e */
\ No newline at end of file